@@ -27,9 +27,15 @@ public class Booking implements Callable<BookingResult> {
 	private NuberDispatch dispatch;
 	private Passenger passenger;
 	private Driver driver;
+	private String region;
 	private int bokingID;
 	private static int ID;
 	
+	/**
+	 * Whether the QUEUED event has been published, so a booking that waits more than once only publishes it once
+	 */
+	private boolean queued = false;
+	
 	/**
 	 * Creates a new booking for a given Nuber dispatch and passenger, noting that no
 	 * driver is provided as it will depend on whether one is available when the region 
@@ -39,15 +45,50 @@ public class Booking implements Callable<BookingResult> {
 	 * @param passenger
 	 */
 	public Booking(NuberDispatch dispatch, Passenger passenger)
+	{
+		this(dispatch, passenger, null);
+	}
+	
+	/**
+	 * Creates a new booking as above, noting the region it was booked into so that
+	 * the events it publishes can be grouped by region.
+	 * 
+	 * @param dispatch
+	 * @param passenger
+	 * @param region The name of the region responsible for the booking
+	 */
+	public Booking(NuberDispatch dispatch, Passenger passenger, String region)
 	{
 		this.dispatch = dispatch;
 		this.passenger = passenger;
+		this.region = region;
 		
 		synchronized(Booking.class) {
 		this.bokingID = ID++;
 		}
 	}
 	
+	/**
+	 * Publishes an event of the given type for this booking to dispatch's event stream
+	 * 
+	 * @param type The step the booking has reached
+	 */
+	void publishEvent(BookingEvent.Type type)
+	{
+		dispatch.publishEvent(new BookingEvent(type, bokingID, region, passenger, driver));
+	}
+	
+	/**
+	 * Publishes the QUEUED event, the first time the booking has to wait for either a position
+	 * in its region or a driver. Only called from the booking's own thread.
+	 */
+	void markQueued()
+	{
+		if (queued) return;
+		queued = true;
+		publishEvent(BookingEvent.Type.QUEUED);
+	}
+	
 	//testing it 
 
 	
@@ -70,12 +111,14 @@ public class Booking implements Callable<BookingResult> {
 	public BookingResult call() {
 		 try {
 	            dispatch.logEvent(this, "Creating booking");
-	             driver = dispatch.getDriver();
+	             driver = dispatch.getDriver(this);
 
 	            // If a driver is available, start the booking
 	            if (driver != null) {
+	                publishEvent(BookingEvent.Type.DRIVER_ASSIGNED);
 	                dispatch.logEvent(this, "Starting booking, getting the driver");
 	                driver.pickUpPassenger(passenger);
+	                publishEvent(BookingEvent.Type.PICKED_UP);
 	                Thread.sleep(1000); // Sleep for 1000ms 
 	                dispatch.logEvent(this, "Starting, on the way to passenger");
 	                driver.driveToDestination();
@@ -85,12 +128,16 @@ public class Booking implements Callable<BookingResult> {
 	                long tripDuration = System.currentTimeMillis() - startTime;
 	                dispatch.logEvent(this, "At destination, driver is now free");
 	                dispatch.addDriver(driver);
+	                publishEvent(BookingEvent.Type.COMPLETED);
 	                return new BookingResult(bokingID, passenger, driver, tripDuration);
 	            } else {
 	                dispatch.logEvent(this, "waiting for the driver");
+	                publishEvent(BookingEvent.Type.REJECTED);
 	                return new BookingResult(bokingID, passenger, null, 0);
 	            }
 	        } catch (InterruptedException e) {
+	            //the booking won't finish, so let subscribers know it has ended
+	            publishEvent(BookingEvent.Type.REJECTED);
 	            Thread.currentThread().interrupt();
 	            return null; 
 	        }
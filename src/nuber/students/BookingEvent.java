@@ -0,0 +1,48 @@
+package nuber.students;
+
+/**
+ * A single step in the life of a booking, as published by NuberDispatch's event stream.
+ *
+ * A booking refused by dispatch never got a booking ID, so its REJECTED event has a
+ * bookingID of -1. A booking that was created but couldn't finish (it was interrupted, or
+ * got no driver) ends with a REJECTED event carrying its own ID instead of COMPLETED.
+ *
+ */
+public class BookingEvent {
+
+	public enum Type {
+		CREATED,
+		/** the booking has to wait for a position in its region or for a driver */
+		QUEUED,
+		DRIVER_ASSIGNED,
+		PICKED_UP,
+		COMPLETED,
+		REJECTED
+	}
+
+	public Type type;
+	public int bookingID;
+	public String region;
+	public Passenger passenger;
+	public Driver driver;
+	public long timestamp;
+
+	public BookingEvent(Type type, int bookingID, String region, Passenger passenger, Driver driver)
+	{
+		this.type = type;
+		this.bookingID = bookingID;
+		this.region = region;
+		this.passenger = passenger;
+		this.driver = driver;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	@Override
+	public String toString()
+	{
+		String driverName = (driver != null) ? driver.name : "null";
+		String passengerName = (passenger != null) ? passenger.name : "null";
+		return String.format("%d:%s:%s:%s:%s", bookingID, region, driverName, passengerName, type);
+	}
+
+}
@@ -0,0 +1,328 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One node of a sharded Nuber cluster. A shard runs its own NuberDispatch for the regions it
+ * owns, and books the passengers that the ShardRouter forwards to it.
+ *
+ * When bookings are waiting for a driver, the shard asks its peer shards, one at a time, to
+ * lend it one. A shard lends a driver only if it has one sitting idle. The driver is then
+ * removed from the lender's dispatch and added to the borrower's. A peer that hasn't replied
+ * within BORROW_TIMEOUT is treated as having said no. Once the borrower has no bookings
+ * waiting, any borrowed driver that is idle is given back to its home shard.
+ *
+ * If the transport reports that a lent or returned driver couldn't be sent, the sender takes
+ * the driver back. A driver message lost after the transport has written it can't be noticed,
+ * and that driver is lost to the cluster.
+ *
+ */
+public class DispatchShard implements ShardTransport.Handler {
+
+	/**
+	 * How often to check whether we need to borrow drivers or can give them back (in milliseconds)
+	 */
+	private static final int BORROW_RETRY = 50;
+
+	/**
+	 * How long to wait for a peer to answer a borrow request before moving on (in milliseconds)
+	 */
+	private static final int BORROW_TIMEOUT = 1000;
+
+	private int node;
+	private ShardTransport transport;
+	private NuberDispatch dispatch;
+	private int[] peers = new int[0];
+
+	/**
+	 * Whether a borrow round is going, the next peer to ask, and how many peers this round has asked
+	 */
+	private boolean borrowing = false;
+	private int nextPeer = 0;
+	private int peersAsked = 0;
+
+	/**
+	 * The ID and send time of the borrow request waiting on a reply, so stale replies can be ignored
+	 */
+	private long borrowRequestID = 0;
+	private long borrowSentAt;
+
+	/**
+	 * Drivers we've borrowed from other shards, and the node each one belongs to
+	 */
+	private Map<Driver, Integer> borrowed = new IdentityHashMap<>();
+
+	private ScheduledExecutorService retryTimer;
+
+	/**
+	 * Creates a new shard and registers it with the transport
+	 *
+	 * @param node This shard's node ID
+	 * @param regionInfo Map of the region names this shard owns and the max simultaneous bookings they can handle
+	 * @param transport The transport connecting this shard to the rest of the cluster
+	 * @param logEvents Whether the shard's dispatch should log booking events
+	 * @throws IOException If the transport can't start listening for this shard
+	 */
+	public DispatchShard(int node, HashMap<String, Integer> regionInfo, ShardTransport transport, boolean logEvents) throws IOException
+	{
+		this.node = node;
+		this.transport = transport;
+		this.dispatch = new NuberDispatch(regionInfo, logEvents);
+		this.retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "DispatchShard-" + node);
+			t.setDaemon(true);
+			return t;
+		});
+		retryTimer.scheduleAtFixedRate(this::checkDrivers, BORROW_RETRY, BORROW_RETRY, TimeUnit.MILLISECONDS);
+
+		transport.register(node, this);
+	}
+
+	/**
+	 * Sets the other shards that drivers can be borrowed from
+	 *
+	 * @param peers The node IDs of the other shards
+	 */
+	public synchronized void setPeers(int[] peers)
+	{
+		this.peers = peers;
+		this.nextPeer = 0;
+	}
+
+	/**
+	 * Tells the shard's dispatch to finish its existing bookings and stop accepting new ones,
+	 * and stops borrowing and returning drivers
+	 */
+	public void shutdown()
+	{
+		dispatch.shutdown();
+		retryTimer.shutdown();
+	}
+
+	public NuberDispatch getDispatch()
+	{
+		return dispatch;
+	}
+
+	public int getNode()
+	{
+		return node;
+	}
+
+	@Override
+	public void onMessage(int from, int to, ShardMessage message)
+	{
+		switch (message.type) {
+			case BOOK:
+				book(from, message);
+				break;
+			case BORROW_DRIVER:
+				lend(from, message);
+				break;
+			case LEND_DRIVER:
+				takeDriver(message.name, message.maxSleep, message.home);
+				synchronized (this) {
+					if (borrowing && message.requestID == borrowRequestID) {
+						stopBorrowing();
+					}
+				}
+				break;
+			case NO_DRIVER:
+				synchronized (this) {
+					if (borrowing && message.requestID == borrowRequestID) {
+						askNextPeer();
+					}
+				}
+				break;
+			case RETURN_DRIVER:
+				takeDriver(message.name, message.maxSleep, node);
+				break;
+			default:
+				System.err.println(node + ": unexpected message from " + from + ": " + message);
+		}
+	}
+
+	@Override
+	public void onSendFailed(int to, ShardMessage message, Exception cause)
+	{
+		switch (message.type) {
+			case BORROW_DRIVER:
+				//treat an unreachable peer as having said no
+				synchronized (this) {
+					if (borrowing && message.requestID == borrowRequestID) {
+						askNextPeer();
+					}
+				}
+				break;
+			case LEND_DRIVER:
+			case RETURN_DRIVER:
+				//the driver never left, so take it back rather than losing it
+				takeDriver(message.name, message.maxSleep, message.home);
+				break;
+			default:
+				System.err.println(node + ": failed to send to node " + to + ": " + message + " (" + cause + ")");
+		}
+	}
+
+	/**
+	 * Books the passenger into our dispatch and replies to the router once the booking is done
+	 */
+	private void book(int router, ShardMessage message)
+	{
+		CompletableFuture<BookingResult> future = dispatch.bookPassenger(new Passenger(message.name, message.maxSleep), message.region);
+		if (future == null) {
+			transport.send(node, router, new ShardMessage(ShardMessage.Type.REJECTED, message.requestID));
+			return;
+		}
+
+		future.whenComplete((result, e) -> {
+			if (result == null || result.driver == null) {
+				transport.send(node, router, new ShardMessage(ShardMessage.Type.REJECTED, message.requestID));
+				return;
+			}
+
+			ShardMessage reply = new ShardMessage(ShardMessage.Type.BOOKED, message.requestID);
+			reply.jobID = result.jobID;
+			reply.name = result.driver.name;
+			reply.maxSleep = result.driver.getMaxSleep();
+			reply.tripDuration = result.tripDuration;
+			transport.send(node, router, reply);
+		});
+	}
+
+	/**
+	 * Gives a peer one of our idle drivers, if we have one
+	 */
+	private void lend(int peer, ShardMessage message)
+	{
+		Driver driver = dispatch.tryGetDriver();
+		if (driver == null) {
+			transport.send(node, peer, new ShardMessage(ShardMessage.Type.NO_DRIVER, message.requestID));
+			return;
+		}
+
+		ShardMessage reply = new ShardMessage(ShardMessage.Type.LEND_DRIVER, message.requestID);
+		reply.name = driver.name;
+		reply.maxSleep = driver.getMaxSleep();
+		synchronized (this) {
+			//a driver we borrowed keeps its original home when passed on
+			Integer home = borrowed.remove(driver);
+			reply.home = (home != null) ? home : node;
+		}
+		transport.send(node, peer, reply);
+	}
+
+	/**
+	 * Adds a driver to our dispatch, remembering where it belongs if that isn't here
+	 */
+	private void takeDriver(String name, int maxSleep, int home)
+	{
+		Driver driver = new Driver(name, maxSleep);
+		if (home != node) {
+			synchronized (this) {
+				borrowed.put(driver, home);
+			}
+		}
+		dispatch.addDriver(driver);
+	}
+
+	/**
+	 * Run every BORROW_RETRY: borrows while bookings are waiting for a driver, gives idle
+	 * borrowed drivers back when none are, and moves on from peers that haven't replied
+	 */
+	private void checkDrivers()
+	{
+		try {
+			synchronized (this) {
+				if (borrowing && System.currentTimeMillis() - borrowSentAt > BORROW_TIMEOUT) {
+					askNextPeer();
+				}
+			}
+
+			if (dispatch.getBookingsAwaitingDriver() > 0) {
+				startBorrowing();
+			} else {
+				returnBorrowedDrivers();
+			}
+		} catch (RuntimeException e) {
+			//keep the timer going, an exception would cancel it
+			System.err.println(node + ": " + e);
+		}
+	}
+
+	/**
+	 * Sends every idle borrowed driver back to the shard it came from
+	 */
+	private void returnBorrowedDrivers()
+	{
+		List<Driver> drivers = new ArrayList<>();
+		List<Integer> homes = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<Driver, Integer> entry : borrowed.entrySet()) {
+				//only drivers that are sitting idle can be taken out of our dispatch
+				if (dispatch.removeIdleDriver(entry.getKey())) {
+					drivers.add(entry.getKey());
+					homes.add(entry.getValue());
+				}
+			}
+			for (Driver driver : drivers) {
+				borrowed.remove(driver);
+			}
+		}
+
+		for (int i = 0; i < drivers.size(); i++) {
+			ShardMessage message = new ShardMessage(ShardMessage.Type.RETURN_DRIVER, 0);
+			message.name = drivers.get(i).name;
+			message.maxSleep = drivers.get(i).getMaxSleep();
+			message.home = homes.get(i);
+			transport.send(node, homes.get(i), message);
+		}
+	}
+
+	private synchronized void startBorrowing()
+	{
+		//only have one borrow going at a time
+		if (borrowing || peers.length == 0) return;
+
+		borrowing = true;
+		peersAsked = 0;
+		askNextPeer();
+	}
+
+	/**
+	 * Asks the next peer in turn for a driver, giving up once every peer has said no, until
+	 * checkDrivers() next finds bookings waiting
+	 */
+	private synchronized void askNextPeer()
+	{
+		if (!borrowing) return;
+
+		if (dispatch.getBookingsAwaitingDriver() == 0 || peersAsked == peers.length) {
+			stopBorrowing();
+			return;
+		}
+
+		int peer = peers[nextPeer];
+		nextPeer = (nextPeer + 1) % peers.length;
+		peersAsked++;
+
+		borrowRequestID++;
+		borrowSentAt = System.currentTimeMillis();
+		transport.send(node, peer, new ShardMessage(ShardMessage.Type.BORROW_DRIVER, borrowRequestID));
+	}
+
+	private synchronized void stopBorrowing()
+	{
+		borrowing = false;
+	}
+
+}
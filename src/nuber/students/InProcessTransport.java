@@ -0,0 +1,75 @@
+package nuber.students;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A ShardTransport for running a whole cluster inside a single JVM without any sockets.
+ *
+ * Every node gets its own single thread that delivers its messages in order, so senders
+ * never wait on a receiving node's handler.
+ *
+ */
+public class InProcessTransport implements ShardTransport {
+
+	private Map<Integer, ExecutorService> nodes = new ConcurrentHashMap<>();
+	private Map<Integer, Handler> handlers = new ConcurrentHashMap<>();
+
+	@Override
+	public void register(int node, Handler handler)
+	{
+		handlers.put(node, handler);
+		nodes.put(node, Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "InProcessTransport-" + node);
+			t.setDaemon(true);
+			return t;
+		}));
+	}
+
+	@Override
+	public void send(int from, int to, ShardMessage message)
+	{
+		ExecutorService node = nodes.get(to);
+		if (node == null) {
+			sendFailed(from, to, message, new IllegalArgumentException("Unknown node: " + to));
+			return;
+		}
+
+		try {
+			node.execute(() -> handlers.get(to).onMessage(from, to, message));
+		} catch (RejectedExecutionException e) {
+			//the receiving node has been closed
+			sendFailed(from, to, message, e);
+		}
+	}
+
+	/**
+	 * Tells the sending node, on its own thread, that its message wasn't delivered
+	 */
+	private void sendFailed(int from, int to, ShardMessage message, Exception cause)
+	{
+		ExecutorService sender = nodes.get(from);
+		if (sender == null) {
+			System.err.println("InProcessTransport: failed to send to node " + to + ": " + message + " (" + cause + ")");
+			return;
+		}
+
+		try {
+			sender.execute(() -> handlers.get(from).onSendFailed(to, message, cause));
+		} catch (RejectedExecutionException e) {
+			//the sender has been closed too, so there's nobody left to tell
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		for (ExecutorService node : nodes.values()) {
+			node.shutdown();
+		}
+	}
+
+}
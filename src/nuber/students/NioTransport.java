@@ -0,0 +1,461 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A ShardTransport that sends length-prefixed ShardMessage frames over non-blocking TCP
+ * sockets, so the nodes of a cluster can be spread across processes or machines. Pointing
+ * every address at 127.0.0.1 runs the whole cluster over loopback on a single machine.
+ *
+ * A single selector thread does all of the socket work. Each destination node gets one
+ * outgoing connection, and whatever frames have queued up for it are written together in
+ * one batch. Received messages are handed to a delivery thread per local node, so slow
+ * handlers never hold up the selector.
+ *
+ * If a connection can't be made or fails, every message queued on it that wasn't completely
+ * written is reported to its sender's Handler.onSendFailed(), and the next send() opens a new
+ * connection. A connection that sends a malformed frame is closed on its own, without
+ * affecting any other connection.
+ *
+ */
+public class NioTransport implements ShardTransport {
+
+	/**
+	 * The starting size of each connection's read buffer, grown if a larger frame arrives
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The most bytes of queued frames gathered into a single write
+	 */
+	private static final int MAX_BATCH = 64 * 1024;
+
+	private interface SelectorTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * A message waiting to be written, kept with its encoded frame so it can be reported if it isn't
+	 */
+	private static class Frame {
+		int from;
+		ShardMessage message;
+		byte[] bytes;
+
+		Frame(int from, ShardMessage message, byte[] bytes)
+		{
+			this.from = from;
+			this.message = message;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A connection to another node that this transport sends frames down
+	 */
+	private static class Outgoing {
+		int to;
+		SocketChannel channel;
+		SelectionKey key;
+		Queue<Frame> frames = new ConcurrentLinkedQueue<>();
+		AtomicBoolean flushScheduled = new AtomicBoolean();
+		volatile boolean closed;
+
+		/**
+		 * The batch being written, the frames in it, and where in the batch each frame ends
+		 */
+		ByteBuffer writing;
+		List<Frame> writingFrames = new ArrayList<>();
+		List<Integer> writingEnds = new ArrayList<>();
+
+		Outgoing(int to, SocketChannel channel)
+		{
+			this.to = to;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * A connection from another node that this transport reads frames from
+	 */
+	private static class Incoming {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+
+	private Map<Integer, InetSocketAddress> addresses;
+	private Map<Integer, Handler> handlers = new ConcurrentHashMap<>();
+	private Map<Integer, ExecutorService> delivery = new ConcurrentHashMap<>();
+	private Map<Integer, Outgoing> outgoing = new ConcurrentHashMap<>();
+	private Queue<SelectorTask> selectorTasks = new ConcurrentLinkedQueue<>();
+
+	private Selector selector;
+	private Thread selectorThread;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a new transport and starts its selector thread
+	 *
+	 * @param addresses The address every node in the cluster listens on
+	 * @throws IOException If the selector can't be opened
+	 */
+	public NioTransport(Map<Integer, InetSocketAddress> addresses) throws IOException
+	{
+		this.addresses = addresses;
+		this.selector = Selector.open();
+
+		selectorThread = new Thread(this::runSelector, "NioTransport-selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	@Override
+	public void register(int node, Handler handler) throws IOException
+	{
+		InetSocketAddress address = addresses.get(node);
+		if (address == null) {
+			throw new IllegalArgumentException("No address for node: " + node);
+		}
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(address);
+		server.configureBlocking(false);
+
+		handlers.put(node, handler);
+		delivery.put(node, Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "NioTransport-" + node);
+			t.setDaemon(true);
+			return t;
+		}));
+
+		runOnSelector(() -> server.register(selector, SelectionKey.OP_ACCEPT));
+	}
+
+	@Override
+	public void send(int from, int to, ShardMessage message)
+	{
+		Outgoing out;
+		try {
+			out = outgoing.computeIfAbsent(to, this::connect);
+		} catch (RuntimeException e) {
+			sendFailed(from, to, message, e);
+			return;
+		}
+		out.frames.add(new Frame(from, message, message.encode(from, to)));
+
+		//only wake the selector if it doesn't already have a flush coming for this connection
+		if (out.flushScheduled.compareAndSet(false, true)) {
+			runOnSelector(() -> {
+				out.flushScheduled.set(false);
+				if (out.closed) {
+					//the connection failed after we queued on it
+					failQueued(out, new IOException("Connection to node " + out.to + " closed"));
+				} else if (out.key != null && out.key.isValid() && out.channel.isConnected()) {
+					out.key.interestOps(SelectionKey.OP_WRITE);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		running = false;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (ExecutorService node : delivery.values()) {
+			node.shutdown();
+		}
+	}
+
+	private Outgoing connect(int to)
+	{
+		InetSocketAddress address = addresses.get(to);
+		if (address == null) {
+			throw new IllegalArgumentException("No address for node: " + to);
+		}
+
+		try {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(address);
+
+			Outgoing out = new Outgoing(to, channel);
+			runOnSelector(() -> out.key = channel.register(selector, SelectionKey.OP_CONNECT, out));
+			return out;
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't connect to node " + to, e);
+		}
+	}
+
+	private void runOnSelector(SelectorTask task)
+	{
+		selectorTasks.add(task);
+		selector.wakeup();
+	}
+
+	private void runSelector()
+	{
+		try {
+			while (running) {
+				selector.select();
+
+				SelectorTask task;
+				while ((task = selectorTasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (IOException | RuntimeException e) {
+						System.err.println("NioTransport: " + e);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+
+					//anything going wrong with one connection only closes that connection
+					try {
+						if (key.isAcceptable()) {
+							accept(key);
+						} else if (key.isConnectable()) {
+							finishConnect(key);
+						} else if (key.isReadable()) {
+							read(key);
+						} else if (key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException | RuntimeException e) {
+						System.err.println("NioTransport: closing connection after " + e);
+						closeKey(key, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("NioTransport: " + e);
+		} finally {
+			IOException closed = new IOException("Transport closed");
+			for (SelectionKey key : selector.keys()) {
+				closeKey(key, closed);
+			}
+			for (Outgoing out : outgoing.values()) {
+				failQueued(out, closed);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				//nothing more we can do
+			}
+		}
+	}
+
+	private void accept(SelectionKey key) throws IOException
+	{
+		SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+		if (channel == null) return;
+
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		channel.register(selector, SelectionKey.OP_READ, new Incoming());
+	}
+
+	private void finishConnect(SelectionKey key) throws IOException
+	{
+		Outgoing out = (Outgoing) key.attachment();
+		if (out.channel.finishConnect()) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Writes as many queued frames as the socket will take, gathering them into batches
+	 */
+	private void write(SelectionKey key) throws IOException
+	{
+		Outgoing out = (Outgoing) key.attachment();
+
+		while (true) {
+			if (out.writing == null || !out.writing.hasRemaining()) {
+				nextBatch(out);
+				if (out.writing == null) {
+					//nothing left, send() will ask for OP_WRITE again when there is
+					key.interestOps(0);
+					return;
+				}
+			}
+
+			out.channel.write(out.writing);
+			if (out.writing.hasRemaining()) {
+				//socket buffer is full, wait until it's writable again
+				return;
+			}
+		}
+	}
+
+	private static void nextBatch(Outgoing out)
+	{
+		out.writing = null;
+		out.writingFrames.clear();
+		out.writingEnds.clear();
+
+		int size = 0;
+		Frame frame;
+		while (size < MAX_BATCH && (frame = out.frames.poll()) != null) {
+			out.writingFrames.add(frame);
+			size += frame.bytes.length;
+			out.writingEnds.add(size);
+		}
+		if (out.writingFrames.isEmpty()) return;
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (Frame f : out.writingFrames) {
+			buffer.put(f.bytes);
+		}
+		buffer.flip();
+		out.writing = buffer;
+	}
+
+	/**
+	 * Reads whatever has arrived and delivers every complete frame in it
+	 *
+	 * @throws IOException If the connection fails or sends a frame with an impossible length
+	 * @throws IllegalArgumentException If a frame can't be decoded
+	 */
+	private void read(SelectionKey key) throws IOException
+	{
+		Incoming in = (Incoming) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+
+		if (channel.read(in.buffer) < 0) {
+			closeKey(key, new IOException("Connection closed by peer"));
+			return;
+		}
+
+		ByteBuffer buffer = in.buffer;
+		buffer.flip();
+
+		while (buffer.remaining() >= ShardMessage.LENGTH_PREFIX) {
+			int length = buffer.getInt(buffer.position());
+			if (length < ShardMessage.MIN_FRAME_LENGTH || length > ShardMessage.MAX_FRAME_LENGTH) {
+				throw new IOException("Bad frame length: " + length);
+			}
+
+			if (buffer.remaining() < ShardMessage.LENGTH_PREFIX + length) {
+				if (ShardMessage.LENGTH_PREFIX + length > buffer.capacity()) {
+					//frame won't fit in the buffer, so grow it and wait for the rest
+					ByteBuffer bigger = ByteBuffer.allocate(ShardMessage.LENGTH_PREFIX + length);
+					bigger.put(buffer);
+					in.buffer = bigger;
+					return;
+				}
+				break;
+			}
+
+			buffer.position(buffer.position() + ShardMessage.LENGTH_PREFIX);
+
+			//decode from a view of just this frame, so a bad frame can't read into the next one
+			ByteBuffer frame = buffer.slice();
+			frame.limit(length);
+			ShardMessage.decode(frame, this::deliver);
+
+			buffer.position(buffer.position() + length);
+		}
+
+		buffer.compact();
+	}
+
+	private void deliver(int from, int to, ShardMessage message)
+	{
+		ExecutorService node = delivery.get(to);
+		if (node == null) {
+			System.err.println("NioTransport: dropping message for unknown node " + to + ": " + message);
+			return;
+		}
+		try {
+			node.execute(() -> handlers.get(to).onMessage(from, to, message));
+		} catch (RejectedExecutionException e) {
+			//the transport is closing
+		}
+	}
+
+	/**
+	 * Tells the sending node, on its delivery thread, that its message wasn't delivered
+	 */
+	private void sendFailed(int from, int to, ShardMessage message, Exception cause)
+	{
+		ExecutorService node = delivery.get(from);
+		if (node == null) {
+			System.err.println("NioTransport: failed to send to node " + to + ": " + message + " (" + cause + ")");
+			return;
+		}
+		try {
+			node.execute(() -> handlers.get(from).onSendFailed(to, message, cause));
+		} catch (RejectedExecutionException e) {
+			//the transport is closing, so there's nobody left to tell
+		}
+	}
+
+	/**
+	 * Reports every frame on the connection that hasn't been completely written as failed
+	 */
+	private void failQueued(Outgoing out, Exception cause)
+	{
+		if (out.writing != null) {
+			for (int i = 0; i < out.writingFrames.size(); i++) {
+				if (out.writingEnds.get(i) > out.writing.position()) {
+					Frame f = out.writingFrames.get(i);
+					sendFailed(f.from, out.to, f.message, cause);
+				}
+			}
+			out.writing = null;
+			out.writingFrames.clear();
+			out.writingEnds.clear();
+		}
+
+		Frame f;
+		while ((f = out.frames.poll()) != null) {
+			sendFailed(f.from, out.to, f.message, cause);
+		}
+	}
+
+	private void closeKey(SelectionKey key, Exception cause)
+	{
+		key.cancel();
+		if (key.attachment() instanceof Outgoing) {
+			Outgoing out = (Outgoing) key.attachment();
+			out.closed = true;
+			//forget the connection so the next send() opens a new one
+			outgoing.remove(out.to, out);
+			failQueued(out, cause);
+		}
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			//already closing, nothing more we can do
+		}
+	}
+
+}
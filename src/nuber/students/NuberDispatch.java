@@ -4,7 +4,10 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The core Dispatch class that instantiates and manages everything for Nuber
@@ -33,9 +36,24 @@ public class NuberDispatch {
 	private int totalBookings = 0;
 	
 	private int totalPendingBookings = 0;
+	
+	/**
+	 * The number of bookings currently waiting in getDriver() for a driver to become idle
+	 */
+	private int bookingsAwaitingDriver = 0;
 
 	private boolean shutdown = false;
 	
+	/**
+	 * Publishes every BookingEvent to subscribers, each with their own bounded buffer
+	 */
+	private SubmissionPublisher<BookingEvent> eventPublisher = new SubmissionPublisher<>();
+	
+	/**
+	 * The number of events dropped because a subscriber's buffer was full
+	 */
+	private AtomicLong droppedEvents = new AtomicLong();
+	
 	
 	
 	/**
@@ -94,14 +112,68 @@ public class NuberDispatch {
 	 */
 	public synchronized Driver getDriver() throws InterruptedException
 	{
-		while (inactiveDrivers.isEmpty()) {
-			
-			wait();		
+		return getDriver(null);
+	}
+	
+	/**
+	 * Gets a driver from the front of the queue as above, marking the booking as queued if it
+	 * has to wait for one
+	 * 
+	 * @param booking The booking the driver is for, or null
+	 * @return A driver that has been removed from the queue
+	 */
+	public synchronized Driver getDriver(Booking booking) throws InterruptedException
+	{
+		if (inactiveDrivers.isEmpty() && booking != null) {
+			booking.markQueued();
+		}
+		
+		bookingsAwaitingDriver++;
+		try {
+			while (inactiveDrivers.isEmpty()) {
+				
+				wait();		
+			}
+		} finally {
+			bookingsAwaitingDriver--;
 		}
 		notifyAll();
 		return inactiveDrivers.poll();
 	}
 
+	/**
+	 * Gets a driver from the front of the queue without waiting, so that an idle driver
+	 * can be lent to another dispatch shard
+	 * 
+	 * @return A driver that has been removed from the queue, or null if none are idle
+	 */
+	public synchronized Driver tryGetDriver()
+	{
+		return inactiveDrivers.poll();
+	}
+	
+	/**
+	 * Gets the number of drivers currently idle in the queue
+	 * 
+	 * @return Number of idle drivers
+	 */
+	public int getIdleDrivers()
+	{
+		return inactiveDrivers.size();
+	}
+	
+	/**
+	 * Removes a specific driver from the queue of idle drivers, so that a borrowed driver
+	 * can be given back to the dispatch shard it came from
+	 * 
+	 * @param driver The driver to remove
+	 * @return true if the driver was idle and has been removed
+	 */
+	public synchronized boolean removeIdleDriver(Driver driver)
+	{
+		return inactiveDrivers.remove(driver);
+	}
+
 	/**
 	 * Prints out the string
 	 * 	    booking + ": " + message
@@ -118,6 +190,62 @@ public class NuberDispatch {
 		
 	}
 
+	/**
+	 * Gets the stream of booking events (created, queued, driver assigned, picked up, completed
+	 * and rejected) for every region in this dispatch.
+	 * 
+	 * Each subscriber gets its own bounded buffer and receives events as it requests them. Events
+	 * are never waited on by booking threads, so if a subscriber falls behind and its buffer fills
+	 * up, further events for that subscriber are dropped (see getDroppedEvents()).
+	 * 
+	 * The stream stays open after shutdown(), so that bookings rejected because dispatch has been
+	 * shutdown are still published. It only completes once closeEvents() is called.
+	 * 
+	 * @return The publisher to subscribe to
+	 */
+	public Flow.Publisher<BookingEvent> getEventPublisher()
+	{
+		return eventPublisher;
+	}
+	
+	/**
+	 * Offers an event to every subscriber without blocking the calling thread
+	 * 
+	 * @param event The event to publish
+	 */
+	public void publishEvent(BookingEvent event)
+	{
+		if (eventPublisher.isClosed()) return;
+		
+		try {
+			eventPublisher.offer(event, (subscriber, dropped) -> {
+				droppedEvents.incrementAndGet();
+				return false;
+			});
+		} catch (IllegalStateException e) {
+			//the publisher was closed whilst we were offering, so there's nobody left to tell
+		}
+	}
+	
+	/**
+	 * Completes the event stream. Any events after this, such as those from bookings still
+	 * running, are not published.
+	 */
+	public void closeEvents()
+	{
+		eventPublisher.close();
+	}
+	
+	/**
+	 * Gets the total number of events dropped across all subscribers because they fell behind
+	 * 
+	 * @return Number of dropped events
+	 */
+	public long getDroppedEvents()
+	{
+		return droppedEvents.get();
+	}
+
 	/**
 	 * Books a given passenger into a given Nuber region.
 	 * 
@@ -129,25 +257,27 @@ public class NuberDispatch {
 	 * @param region The region to book them into
 	 * @return returns a Future<BookingResult> object
 	 */
-	public Future<BookingResult> bookPassenger(Passenger passenger, String region) {
+	public CompletableFuture<BookingResult> bookPassenger(Passenger passenger, String region) {
 		//return regions.get(region).bookPassenger(passenger);
 	//}
 		
-		  if (shutdown) {
-	            return null; // should Return null if the dispatch has been shut down
-	        }
+		  NuberRegion nuberRegion = regions.get(region);
 
-	        NuberRegion nuberRegion = regions.get(region);
-	        if (nuberRegion != null) {
-	            Future<BookingResult> result = nuberRegion.bookPassenger(passenger);
-	            if (result != null) {
-	                totalPendingBookings++;
-	            }
-	            return result;
-	        } else {
-	            // Handle the case where the region doesn't exist
-	            return null;
-	        }
+		  synchronized (this) {
+			  if (shutdown || nuberRegion == null) {
+				  // should Return null if the dispatch has been shut down, or the region doesn't exist
+				  publishEvent(new BookingEvent(BookingEvent.Type.REJECTED, -1, region, passenger, null));
+				  return null;
+			  }
+			  //count the booking before it starts so it can't finish before being counted
+			  totalPendingBookings++;
+		  }
+
+		  CompletableFuture<BookingResult> result = nuberRegion.bookPassenger(passenger);
+		  if (result == null) {
+			  completeBooking();
+		  }
+		  return result;
 	}
 		
 		
@@ -166,15 +296,9 @@ public class NuberDispatch {
 	 * 
 	 * @return Number of bookings awaiting driver, across ALL regions
 	 */
-	public int getBookingsAwaitingDriver()
+	public synchronized int getBookingsAwaitingDriver()
 	{
-		
-		int total = 0;
-		for(NuberRegion region: regions.values()) {
-			total += region.pendingBookings();
-		}
-		
-		return total;
+		return bookingsAwaitingDriver;
 	}
 	
 
@@ -182,7 +306,9 @@ public class NuberDispatch {
 	 * Tells all regions to finish existing bookings already allocated, and stop accepting new bookings
 	 */
 	public void shutdown() {
-		shutdown = true;
+		synchronized (this) {
+			shutdown = true;
+		}
         for (NuberRegion region : regions.values()) {
             region.shutdown();
         }
@@ -4,7 +4,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * A single Nuber region that operates independently of other regions, other than getting 
@@ -27,6 +27,11 @@ public class NuberRegion {
 	private NuberDispatch dispatch;
 	private int maxSimultaneousJobs;
 	
+	/**
+	 * One permit for each booking that can be active at once, taken before asking dispatch for a driver
+	 */
+	private Semaphore activeJobs;
+	
 	//test
 	private int totalCount = 0;
 	int cores= Runtime.getRuntime().availableProcessors(); //determine the cpu core 
@@ -45,6 +50,8 @@ public class NuberRegion {
 		this.dispatch = dispatch;
 		this.regionName = regionName;
 		this.maxSimultaneousJobs = maxSimultaneousJobs;
+		//fair, so waiting bookings get a position roughly in the order they were booked
+		this.activeJobs = new Semaphore(maxSimultaneousJobs, true);
 		this.executor= Executors.newFixedThreadPool(cores);
 	}
 	
@@ -59,20 +66,32 @@ public class NuberRegion {
 	 * @param waitingPassenger
 	 * @return a Future that will provide the final BookingResult object from the completed booking
 	 */
-	public Future<BookingResult> bookPassenger(Passenger waitingPassenger)
+	public CompletableFuture<BookingResult> bookPassenger(Passenger waitingPassenger)
 	{
 		//testing it all out might have to make changes  
 		CompletableFuture<BookingResult> future = new CompletableFuture<>();
+		Booking booking = new Booking(dispatch, waitingPassenger, regionName);
+		booking.publishEvent(BookingEvent.Type.CREATED);
 		// thread using a lambda expression 
 		Thread bookingThread = new Thread(() -> {
 			try {
-				Booking booking = new Booking(dispatch,waitingPassenger);
-				BookingResult result = booking.call();
-				future.complete(result);
-				dispatch.completeBooking();
+				if (!activeJobs.tryAcquire()) {
+					booking.markQueued();
+					activeJobs.acquire();
+				}
+				try {
+					BookingResult result = booking.call();
+					future.complete(result);
+				} finally {
+					activeJobs.release();
+				}
 		}catch(Exception e)
 		{
+			booking.publishEvent(BookingEvent.Type.REJECTED);
 			future.completeExceptionally(e);
+		}finally
+		{
+			dispatch.completeBooking();
 		}
 	});
 		bookingThread.start();
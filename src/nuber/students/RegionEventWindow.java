@@ -0,0 +1,216 @@
+package nuber.students;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A processor that sits on a NuberDispatch event stream and groups the events into
+ * fixed-length (tumbling) time windows per region.
+ *
+ * At the end of every window, one Aggregate is published for each region that had any
+ * events in that window, holding how many events of each type were seen and the average
+ * time from a booking being created to it being completed. Only completions whose CREATED
+ * event was also seen count towards that average.
+ *
+ * Usage:
+ *     RegionEventWindow window = new RegionEventWindow(1000);
+ *     dispatch.getEventPublisher().subscribe(window);
+ *     window.subscribe(mySubscriber);
+ *     ...
+ *     dispatch.closeEvents(); //publishes the last window and completes mySubscriber
+ *
+ */
+public class RegionEventWindow extends SubmissionPublisher<RegionEventWindow.Aggregate>
+		implements Flow.Processor<BookingEvent, RegionEventWindow.Aggregate> {
+
+	/**
+	 * How long a booking's CREATED time is kept waiting for its COMPLETED event (in milliseconds)
+	 * by default, after which the booking is assumed to have been lost
+	 */
+	public static final long DEFAULT_MAX_BOOKING_AGE = 10 * 60 * 1000;
+
+	/**
+	 * The events seen for a single region within a single window
+	 */
+	public static class Aggregate {
+
+		public String region;
+		public long windowStart;
+		public long windowEnd;
+		public EnumMap<BookingEvent.Type, Integer> counts = new EnumMap<>(BookingEvent.Type.class);
+		public long averageBookingTime;
+
+		private long totalBookingTime;
+		private int timedCompletions;
+
+		public Aggregate(String region, long windowStart)
+		{
+			this.region = region;
+			this.windowStart = windowStart;
+			for (BookingEvent.Type type : BookingEvent.Type.values()) {
+				counts.put(type, 0);
+			}
+		}
+
+		public int getCount(BookingEvent.Type type)
+		{
+			return counts.get(type);
+		}
+
+		@Override
+		public String toString()
+		{
+			return region + " [" + windowStart + "-" + windowEnd + "]: " + counts + ", average booking time " + averageBookingTime + "ms";
+		}
+	}
+
+	private final Object lock = new Object();
+	private long windowStart;
+	private Map<String, Aggregate> current = new HashMap<>();
+
+	/**
+	 * When each booking that's still in progress was created, so its total time can be found on completion
+	 */
+	private Map<Integer, Long> createdAt = new HashMap<>();
+	private long maxBookingAge;
+
+	private ScheduledExecutorService timer;
+	private volatile Flow.Subscription subscription;
+
+	/**
+	 * Creates a new region event window
+	 *
+	 * @param windowMillis The length of each window (in milliseconds)
+	 */
+	public RegionEventWindow(long windowMillis)
+	{
+		this(windowMillis, DEFAULT_MAX_BOOKING_AGE);
+	}
+
+	/**
+	 * Creates a new region event window
+	 *
+	 * @param windowMillis The length of each window (in milliseconds)
+	 * @param maxBookingAge How long to wait for a booking's COMPLETED event before forgetting it (in milliseconds)
+	 */
+	public RegionEventWindow(long windowMillis, long maxBookingAge)
+	{
+		this.maxBookingAge = maxBookingAge;
+		this.windowStart = System.currentTimeMillis();
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "RegionEventWindow");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(this::closeWindow, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription)
+	{
+		//a processor only has one upstream, so any later subscription is cancelled
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(BookingEvent event)
+	{
+		synchronized (lock) {
+			String region = (event.region != null) ? event.region : "null";
+			Aggregate aggregate = current.get(region);
+			if (aggregate == null) {
+				aggregate = new Aggregate(region, windowStart);
+				current.put(region, aggregate);
+			}
+
+			aggregate.counts.merge(event.type, 1, Integer::sum);
+
+			if (event.type == BookingEvent.Type.CREATED) {
+				createdAt.put(event.bookingID, event.timestamp);
+			} else if (event.type == BookingEvent.Type.REJECTED) {
+				//a created booking that couldn't finish won't complete either
+				createdAt.remove(event.bookingID);
+			} else if (event.type == BookingEvent.Type.COMPLETED) {
+				Long created = createdAt.remove(event.bookingID);
+				if (created != null) {
+					aggregate.totalBookingTime += event.timestamp - created;
+					aggregate.timedCompletions++;
+				}
+			}
+		}
+		subscription.request(1);
+	}
+
+	@Override
+	public void onError(Throwable throwable)
+	{
+		timer.shutdown();
+		closeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete()
+	{
+		timer.shutdown();
+		closeWindow();
+		close();
+	}
+
+	/**
+	 * Stops windowing, cancels the upstream subscription and completes our own subscribers
+	 */
+	@Override
+	public void close()
+	{
+		timer.shutdown();
+		Flow.Subscription upstream = subscription;
+		if (upstream != null) {
+			upstream.cancel();
+		}
+		super.close();
+	}
+
+	/**
+	 * Publishes the aggregates for the current window and starts a new one. Like dispatch,
+	 * aggregates are dropped rather than waited on if a subscriber has fallen behind.
+	 */
+	private void closeWindow()
+	{
+		Map<String, Aggregate> finished;
+		long windowEnd = System.currentTimeMillis();
+
+		synchronized (lock) {
+			finished = current;
+			current = new HashMap<>();
+			windowStart = windowEnd;
+
+			//forget bookings whose COMPLETED or REJECTED event was dropped or never came
+			createdAt.values().removeIf(created -> windowEnd - created > maxBookingAge);
+		}
+
+		for (Aggregate aggregate : finished.values()) {
+			aggregate.windowEnd = windowEnd;
+			aggregate.averageBookingTime = aggregate.timedCompletions > 0 ? aggregate.totalBookingTime / aggregate.timedCompletions : 0;
+
+			try {
+				offer(aggregate, null);
+			} catch (IllegalStateException e) {
+				//already closed, nobody is listening any more
+				return;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package nuber.students;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single message passed between the router and dispatch shards of a sharded Nuber cluster.
+ *
+ * On the wire every message is a length-prefixed frame:
+ *     [int length][int from][int to][byte type][long requestID][int jobID][int maxSleep][long tripDuration][int home][region][name]
+ * where length covers everything after itself, and region and name are each an int byte
+ * count followed by UTF-8 bytes (a count of -1 meaning null).
+ *
+ * Frames whose length is outside MIN_FRAME_LENGTH..MAX_FRAME_LENGTH, or whose contents
+ * don't fit in that length, are rejected when decoded.
+ *
+ */
+public class ShardMessage {
+
+	public enum Type {
+		/** router to shard: book the passenger into the region */
+		BOOK,
+		/** shard to router: the booking has completed */
+		BOOKED,
+		/** shard to router: the booking was rejected */
+		REJECTED,
+		/** shard to shard: lend me an idle driver if you have one */
+		BORROW_DRIVER,
+		/** shard to shard: here is an idle driver */
+		LEND_DRIVER,
+		/** shard to shard: no idle drivers to lend */
+		NO_DRIVER,
+		/** shard to shard: giving back a driver that was borrowed from you */
+		RETURN_DRIVER
+	}
+
+	/**
+	 * The number of bytes in a frame's length prefix
+	 */
+	public static final int LENGTH_PREFIX = 4;
+
+	/**
+	 * The smallest a frame can be after its length prefix: every fixed field, and both strings null
+	 */
+	public static final int MIN_FRAME_LENGTH = 4 + 4 + 1 + 8 + 4 + 4 + 8 + 4 + 4 + 4;
+
+	/**
+	 * The largest frame that will be accepted, so a corrupt length can't make the reader allocate without limit
+	 */
+	public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+	public Type type;
+	public long requestID;
+	public String region;
+	public String name;
+	public int maxSleep;
+	public int jobID;
+	public long tripDuration;
+
+	/**
+	 * For LEND_DRIVER and RETURN_DRIVER, the node the driver originally belongs to
+	 */
+	public int home;
+
+	public ShardMessage(Type type, long requestID)
+	{
+		this.type = type;
+		this.requestID = requestID;
+	}
+
+	/**
+	 * Encodes this message as a complete frame, including the length prefix
+	 *
+	 * @param from The node sending the message
+	 * @param to The node the message is for
+	 * @return The frame's bytes
+	 */
+	public byte[] encode(int from, int to)
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0); //length, filled in below
+			out.writeInt(from);
+			out.writeInt(to);
+			out.writeByte(type.ordinal());
+			out.writeLong(requestID);
+			out.writeInt(jobID);
+			out.writeInt(maxSleep);
+			out.writeLong(tripDuration);
+			out.writeInt(home);
+			writeString(out, region);
+			writeString(out, name);
+			out.flush();
+
+			byte[] frame = bytes.toByteArray();
+			ByteBuffer.wrap(frame).putInt(frame.length - LENGTH_PREFIX);
+			return frame;
+		} catch (IOException e) {
+			//can't happen when writing to a byte array
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes a frame body, the bytes that follow a length prefix
+	 *
+	 * @param frame A buffer holding exactly the frame body
+	 * @param handler Where to deliver the decoded message
+	 * @throws IllegalArgumentException If the frame is malformed
+	 */
+	public static void decode(ByteBuffer frame, ShardTransport.Handler handler)
+	{
+		if (frame.remaining() < MIN_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Frame too short: " + frame.remaining() + " bytes");
+		}
+
+		int from = frame.getInt();
+		int to = frame.getInt();
+		int type = frame.get();
+		if (type < 0 || type >= Type.values().length) {
+			throw new IllegalArgumentException("Unknown message type: " + type);
+		}
+
+		ShardMessage message = new ShardMessage(Type.values()[type], frame.getLong());
+		message.jobID = frame.getInt();
+		message.maxSleep = frame.getInt();
+		message.tripDuration = frame.getLong();
+		message.home = frame.getInt();
+		message.region = readString(frame);
+		message.name = readString(frame);
+
+		handler.onMessage(from, to, message);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer)
+	{
+		int length = buffer.getInt();
+		if (length == -1) return null;
+		if (length < -1 || length > buffer.remaining()) {
+			throw new IllegalArgumentException("Bad string length: " + length);
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s:%d:%s:%s", type, requestID, region, name);
+	}
+
+}
@@ -0,0 +1,219 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The front door of a sharded Nuber cluster. The router knows which shard owns each region,
+ * and forwards each bookPassenger() to the owning shard, completing the returned future
+ * when the shard replies.
+ *
+ * A booking whose reply doesn't arrive within the booking timeout is failed with a
+ * TimeoutException. If the transport reports that a booking couldn't be sent to its shard,
+ * that booking is failed straight away.
+ *
+ */
+public class ShardRouter implements ShardTransport.Handler {
+
+	/**
+	 * How long a booking can wait for its shard to reply by default (in milliseconds)
+	 */
+	public static final long DEFAULT_BOOKING_TIMEOUT = 10 * 60 * 1000;
+
+	/**
+	 * How often waiting bookings are checked against the timeout (in milliseconds)
+	 */
+	private static final long TIMEOUT_CHECK = 1000;
+
+	/**
+	 * A booking that has been forwarded to a shard and not yet replied to
+	 */
+	private static class PendingBooking {
+		Passenger passenger;
+		int shard;
+		long sentAt = System.currentTimeMillis();
+		CompletableFuture<BookingResult> future = new CompletableFuture<>();
+
+		PendingBooking(Passenger passenger, int shard)
+		{
+			this.passenger = passenger;
+			this.shard = shard;
+		}
+	}
+
+	private int node;
+	private ShardTransport transport;
+	private Map<String, Integer> regionOwners;
+	private Map<Long, PendingBooking> pending = new ConcurrentHashMap<>();
+	private AtomicLong nextRequestID = new AtomicLong();
+	private long bookingTimeout;
+	private ScheduledExecutorService timeoutTimer;
+
+	/**
+	 * Creates a new router with the default booking timeout and registers it with the transport
+	 *
+	 * @param node The router's node ID
+	 * @param regionOwners Map of region names to the node ID of the shard that owns them
+	 * @param transport The transport connecting the router to the shards
+	 * @throws IOException If the transport can't start listening for the router
+	 */
+	public ShardRouter(int node, Map<String, Integer> regionOwners, ShardTransport transport) throws IOException
+	{
+		this(node, regionOwners, transport, DEFAULT_BOOKING_TIMEOUT);
+	}
+
+	/**
+	 * Creates a new router and registers it with the transport
+	 *
+	 * @param node The router's node ID
+	 * @param regionOwners Map of region names to the node ID of the shard that owns them
+	 * @param transport The transport connecting the router to the shards
+	 * @param bookingTimeout How long a booking can wait for its shard to reply (in milliseconds)
+	 * @throws IOException If the transport can't start listening for the router
+	 */
+	public ShardRouter(int node, Map<String, Integer> regionOwners, ShardTransport transport, long bookingTimeout) throws IOException
+	{
+		this.node = node;
+		this.regionOwners = regionOwners;
+		this.transport = transport;
+		this.bookingTimeout = bookingTimeout;
+
+		this.timeoutTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ShardRouter-" + node);
+			t.setDaemon(true);
+			return t;
+		});
+		long check = Math.min(bookingTimeout, TIMEOUT_CHECK);
+		timeoutTimer.scheduleAtFixedRate(this::failTimedOut, check, check, TimeUnit.MILLISECONDS);
+
+		transport.register(node, this);
+	}
+
+	/**
+	 * Splits the regions across the shards round-robin, in region name order, so that every
+	 * node in the cluster comes up with the same partition from the same configuration
+	 *
+	 * @param regionInfo Map of region names and the max simultaneous bookings they can handle
+	 * @param shards The node IDs of the shards
+	 * @return Map of shard node ID to the regions it owns
+	 */
+	public static Map<Integer, HashMap<String, Integer>> partition(Map<String, Integer> regionInfo, int[] shards)
+	{
+		Map<Integer, HashMap<String, Integer>> partition = new HashMap<>();
+		for (int shard : shards) {
+			partition.put(shard, new HashMap<String, Integer>());
+		}
+
+		List<String> names = new ArrayList<>(regionInfo.keySet());
+		Collections.sort(names);
+		for (int i = 0; i < names.size(); i++) {
+			partition.get(shards[i % shards.length]).put(names.get(i), regionInfo.get(names.get(i)));
+		}
+		return partition;
+	}
+
+	/**
+	 * Forwards a booking for the given passenger to the shard that owns the region.
+	 *
+	 * If the region isn't owned by any shard, null is returned. If the shard rejects the
+	 * booking (for example because it has been shutdown), the future completes with null.
+	 * If the booking can't be sent to the shard, or the shard doesn't reply within the booking
+	 * timeout, the future completes exceptionally.
+	 *
+	 * @param passenger The passenger to book
+	 * @param region The region to book them into
+	 * @return a Future that will provide the final BookingResult object from the completed booking
+	 */
+	public CompletableFuture<BookingResult> bookPassenger(Passenger passenger, String region)
+	{
+		Integer shard = regionOwners.get(region);
+		if (shard == null) return null;
+
+		long requestID = nextRequestID.incrementAndGet();
+		PendingBooking booking = new PendingBooking(passenger, shard);
+		pending.put(requestID, booking);
+
+		ShardMessage message = new ShardMessage(ShardMessage.Type.BOOK, requestID);
+		message.region = region;
+		message.name = passenger.name;
+		message.maxSleep = passenger.getMaxSleep();
+		transport.send(node, shard, message);
+
+		return booking.future;
+	}
+
+	/**
+	 * Gets the number of bookings forwarded to shards that haven't completed yet
+	 *
+	 * @return Number of bookings in flight
+	 */
+	public int getPendingBookings()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Stops checking bookings for timeouts. Bookings still waiting are left as they are.
+	 */
+	public void shutdown()
+	{
+		timeoutTimer.shutdown();
+	}
+
+	@Override
+	public void onMessage(int from, int to, ShardMessage message)
+	{
+		PendingBooking booking = pending.remove(message.requestID);
+		if (booking == null) {
+			System.err.println(node + ": reply from " + from + " for unknown booking: " + message);
+			return;
+		}
+
+		if (message.type == ShardMessage.Type.BOOKED) {
+			Driver driver = new Driver(message.name, message.maxSleep);
+			booking.future.complete(new BookingResult(message.jobID, booking.passenger, driver, message.tripDuration));
+		} else {
+			booking.future.complete(null);
+		}
+	}
+
+	@Override
+	public void onSendFailed(int to, ShardMessage message, Exception cause)
+	{
+		//only this booking is known to be lost, others may already be with the shard and
+		//replies come back on their own connection, so anything else lost is left to the timeout
+		if (message.type != ShardMessage.Type.BOOK) return;
+
+		PendingBooking booking = pending.remove(message.requestID);
+		if (booking != null) {
+			booking.future.completeExceptionally(new IOException("Shard " + to + " is unreachable", cause));
+		}
+	}
+
+	/**
+	 * Fails every booking that has waited longer than the booking timeout
+	 */
+	private void failTimedOut()
+	{
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long, PendingBooking> entry : pending.entrySet()) {
+			PendingBooking booking = entry.getValue();
+			if (now - booking.sentAt > bookingTimeout && pending.remove(entry.getKey(), booking)) {
+				booking.future.completeExceptionally(new TimeoutException(
+						"No reply from shard " + booking.shard + " after " + bookingTimeout + "ms"));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package nuber.students;
+
+import java.io.IOException;
+
+/**
+ * Carries ShardMessages between the nodes (router and dispatch shards) of a sharded Nuber
+ * cluster. Nodes are identified by an int ID.
+ *
+ * Sending must never block the caller on the receiving node, and messages from one node to
+ * another must be delivered in the order they were sent. Failures to deliver are reported to
+ * the sender's Handler rather than thrown.
+ *
+ */
+public interface ShardTransport {
+
+	/**
+	 * Receives the messages sent to a node
+	 */
+	public interface Handler {
+
+		/**
+		 * @param from The node that sent the message
+		 * @param to The node the message was sent to
+		 * @param message The message
+		 */
+		void onMessage(int from, int to, ShardMessage message);
+
+		/**
+		 * Called when a message this node sent could not be delivered, for example because the
+		 * receiving node can't be reached. A message that was handed to the network and lost
+		 * after that is not reported, so senders still need their own timeouts.
+		 *
+		 * @param to The node the message was sent to
+		 * @param message The message that wasn't delivered
+		 * @param cause Why it wasn't delivered
+		 */
+		default void onSendFailed(int to, ShardMessage message, Exception cause)
+		{
+			System.err.println("Failed to send to node " + to + ": " + message + " (" + cause + ")");
+		}
+	}
+
+	/**
+	 * Starts delivering messages sent to the given node to the handler
+	 *
+	 * @param node The node's ID
+	 * @param handler The handler for the node's messages
+	 * @throws IOException If the node can't start listening
+	 */
+	void register(int node, Handler handler) throws IOException;
+
+	/**
+	 * Queues a message to be sent from one node to another. If the message can't be
+	 * delivered, the sending node's Handler.onSendFailed() is called.
+	 *
+	 * @param from The sending node
+	 * @param to The receiving node
+	 * @param message The message to send
+	 */
+	void send(int from, int to, ShardMessage message);
+
+	/**
+	 * Stops delivering messages and releases any resources held by the transport
+	 */
+	void close();
+
+}
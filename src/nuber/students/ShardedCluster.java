@@ -0,0 +1,219 @@
+package nuber.students;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs and benchmarks a sharded Nuber cluster: a ShardRouter as node 0, and a DispatchShard
+ * for each of nodes 1..shards, with the regions partitioned between the shards and the
+ * drivers handed out to the shards round-robin.
+ *
+ * By default every node runs in this JVM, connected either in-process or over NIO sockets on
+ * loopback. Passing node=N instead runs only that node, so the cluster can be spread over
+ * several processes that were all started with the same configuration. Node 0 (the router)
+ * runs the benchmark, so start the shards first.
+ *
+ * Usage:
+ *     java nuber.students.ShardedCluster shards=3 regions=North,South,East,West limit=50 drivers=10 passengers=100 sleep=100 transport=nio
+ *     java nuber.students.ShardedCluster transport=nio node=1 ...
+ *
+ * Any argument left out keeps its default value.
+ *
+ */
+public class ShardedCluster {
+
+	public static final int ROUTER_NODE = 0;
+
+	/**
+	 * The settings for a cluster, as given on the command line
+	 */
+	static class Config {
+
+		int shards = 3;
+		String[] regionNames = {"North", "South", "East", "West"};
+		int limit = 50;
+		int drivers = 10;
+		int passengers = 100;
+		int maxSleep = 100;
+		String transportName = "inprocess";
+		String host = "127.0.0.1";
+		int basePort = 7000;
+		int onlyNode = -1;
+		long timeout = ShardRouter.DEFAULT_BOOKING_TIMEOUT;
+
+		static Config parse(String[] args)
+		{
+			Config config = new Config();
+			for (String arg : args) {
+				String[] kv = arg.split("=", 2);
+				if (kv.length != 2) {
+					throw new IllegalArgumentException("Expected key=value but got: " + arg);
+				}
+
+				switch (kv[0]) {
+					case "shards": config.shards = Integer.parseInt(kv[1]); break;
+					case "regions": config.regionNames = kv[1].split(","); break;
+					case "limit": config.limit = Integer.parseInt(kv[1]); break;
+					case "drivers": config.drivers = Integer.parseInt(kv[1]); break;
+					case "passengers": config.passengers = Integer.parseInt(kv[1]); break;
+					case "sleep": config.maxSleep = Integer.parseInt(kv[1]); break;
+					case "transport": config.transportName = kv[1]; break;
+					case "host": config.host = kv[1]; break;
+					case "port": config.basePort = Integer.parseInt(kv[1]); break;
+					case "node": config.onlyNode = Integer.parseInt(kv[1]); break;
+					case "timeout": config.timeout = Long.parseLong(kv[1]); break;
+					default: throw new IllegalArgumentException("Unknown argument: " + kv[0]);
+				}
+			}
+
+			if (config.shards <= 0) {
+				throw new IllegalArgumentException("shards must be at least 1 but was " + config.shards);
+			}
+			//a region with no positions would never start any of its bookings
+			if (config.limit <= 0) {
+				throw new IllegalArgumentException("limit must be at least 1 but was " + config.limit);
+			}
+			//-1, the default, runs every node in this process
+			if (config.onlyNode != -1 && (config.onlyNode < 0 || config.onlyNode > config.shards)) {
+				throw new IllegalArgumentException("node must be between 0 and " + config.shards + " but was " + config.onlyNode);
+			}
+			return config;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		Config config = Config.parse(args);
+
+		HashMap<String, Integer> regions = new HashMap<String, Integer>();
+		for (String name : config.regionNames) {
+			regions.put(name, config.limit);
+		}
+
+		int[] shardNodes = new int[config.shards];
+		for (int i = 0; i < config.shards; i++) {
+			shardNodes[i] = i + 1;
+		}
+		Map<Integer, HashMap<String, Integer>> partition = ShardRouter.partition(regions, shardNodes);
+
+		ShardTransport transport = createTransport(config);
+
+		//create the shards that run in this process
+		List<DispatchShard> localShards = new ArrayList<DispatchShard>();
+		for (int shard : shardNodes) {
+			if (config.onlyNode < 0 || config.onlyNode == shard) {
+				localShards.add(createShard(config, shard, shardNodes, partition.get(shard), transport));
+			}
+		}
+
+		if (config.onlyNode > 0) {
+			System.out.println("Shard " + config.onlyNode + " serving " + partition.get(config.onlyNode).keySet());
+			Thread.currentThread().join();
+			return;
+		}
+
+		Map<String, Integer> regionOwners = new HashMap<String, Integer>();
+		for (Map.Entry<Integer, HashMap<String, Integer>> entry : partition.entrySet()) {
+			for (String region : entry.getValue().keySet()) {
+				regionOwners.put(region, entry.getKey());
+			}
+		}
+		ShardRouter router = new ShardRouter(ROUTER_NODE, regionOwners, transport, config.timeout);
+
+		runBenchmark(config, router);
+
+		router.shutdown();
+		for (DispatchShard shard : localShards) {
+			shard.shutdown();
+		}
+		transport.close();
+	}
+
+	private static ShardTransport createTransport(Config config) throws Exception
+	{
+		switch (config.transportName) {
+			case "inprocess":
+				if (config.onlyNode >= 0) {
+					throw new IllegalArgumentException("node= needs transport=nio");
+				}
+				return new InProcessTransport();
+			case "nio":
+				Map<Integer, InetSocketAddress> addresses = new HashMap<Integer, InetSocketAddress>();
+				for (int node = 0; node <= config.shards; node++) {
+					addresses.put(node, new InetSocketAddress(config.host, config.basePort + node));
+				}
+				return new NioTransport(addresses);
+			default:
+				throw new IllegalArgumentException("Unknown transport: " + config.transportName);
+		}
+	}
+
+	private static DispatchShard createShard(Config config, int shard, int[] shardNodes, HashMap<String, Integer> regions, ShardTransport transport) throws Exception
+	{
+		DispatchShard dispatchShard = new DispatchShard(shard, regions, transport, false);
+
+		int[] peers = new int[shardNodes.length - 1];
+		int p = 0;
+		for (int other : shardNodes) {
+			if (other != shard) peers[p++] = other;
+		}
+		dispatchShard.setPeers(peers);
+
+		//hand out the drivers round-robin, so every process agrees on who has which
+		for (int i = 0; i < config.drivers; i++) {
+			if (shardNodes[i % shardNodes.length] == shard) {
+				dispatchShard.getDispatch().addDriver(new Driver("D-" + Person.getRandomName(), config.maxSleep));
+			}
+		}
+		return dispatchShard;
+	}
+
+	private static void runBenchmark(Config config, ShardRouter router) throws Exception
+	{
+		System.out.println("Sharded cluster: " + config.shards + " shards, " + config.regionNames.length + " regions, "
+				+ config.drivers + " drivers, " + config.passengers + " passengers, transport " + config.transportName);
+
+		long start = System.currentTimeMillis();
+		Random random = new Random();
+		List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+		AtomicInteger failed = new AtomicInteger();
+		List<CompletableFuture<BookingResult>> bookings = new ArrayList<CompletableFuture<BookingResult>>();
+
+		for (int i = 0; i < config.passengers; i++) {
+			Passenger p = new Passenger("P-" + Person.getRandomName(), config.maxSleep);
+			String region = config.regionNames[random.nextInt(config.regionNames.length)];
+
+			long bookedTime = System.currentTimeMillis();
+			CompletableFuture<BookingResult> f = router.bookPassenger(p, region);
+			if (f != null) {
+				//count failed bookings rather than letting them stop the run
+				bookings.add(f.handle((result, e) -> {
+					if (e != null || result == null) {
+						failed.incrementAndGet();
+					} else {
+						latencies.add(System.currentTimeMillis() - bookedTime);
+					}
+					return result;
+				}));
+			}
+		}
+
+		CompletableFuture.allOf(bookings.toArray(new CompletableFuture<?>[0])).join();
+
+		long totalTime = System.currentTimeMillis() - start;
+		List<Long> sorted = new ArrayList<Long>(latencies);
+		Collections.sort(sorted);
+
+		System.out.println(String.format("Sharded run complete in %dms, %.3f bookings/s, p50 %dms, p99 %dms, %d failed",
+				totalTime, sorted.size() * 1000.0 / Math.max(totalTime, 1),
+				SweepRunner.percentile(sorted, 50), SweepRunner.percentile(sorted, 99), failed.get()));
+	}
+
+}
@@ -0,0 +1,379 @@
+package nuber.students;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs a grid of Simulation-style scenarios concurrently, so that driver counts, passenger
+ * counts and region limits can be swept with a single command instead of editing the
+ * commented-out lines in AssignmentDriver.
+ *
+ * Every scenario gets its own NuberDispatch, drivers and passengers, and the scenarios are
+ * run on a ForkJoinPool whose parallelism bounds how many run at once. Once all scenarios
+ * have finished, one row per scenario is written out with the throughput and the booking
+ * latency percentiles of the bookings that completed, and how many bookings failed. The output is JSON if the file name ends in ".json", otherwise CSV.
+ *
+ * Usage:
+ *     java nuber.students.SweepRunner drivers=1,5,10 passengers=10,100 limits=10,50 sleep=1000 parallelism=4 out=sweep.csv
+ *
+ * Any argument left out keeps its default value.
+ *
+ */
+public class SweepRunner {
+
+	/**
+	 * The region names every scenario is booked into, the same as the ones AssignmentDriver uses
+	 */
+	private static final String[] REGION_NAMES = {"North", "South"};
+
+	/**
+	 * How often a running scenario checks its bookings for completion (in milliseconds)
+	 */
+	private static final int POLL_INTERVAL = 5;
+
+	/**
+	 * A single point in the sweep grid
+	 */
+	public static class Scenario {
+
+		public int maxDrivers;
+		public int maxPassengers;
+		public int regionLimit;
+		public int maxSleep;
+
+		public Scenario(int maxDrivers, int maxPassengers, int regionLimit, int maxSleep)
+		{
+			//with no drivers every booking would wait in getDriver() forever
+			if (maxDrivers <= 0) {
+				throw new IllegalArgumentException("drivers must be at least 1 but was " + maxDrivers);
+			}
+			if (maxPassengers < 0) {
+				throw new IllegalArgumentException("passengers can't be negative but was " + maxPassengers);
+			}
+			//a region with no positions would never start any of its bookings
+			if (regionLimit <= 0) {
+				throw new IllegalArgumentException("limits must be at least 1 but was " + regionLimit);
+			}
+			//a negative sleep makes Thread.sleep() throw in the booking, which never gives its driver back
+			if (maxSleep < 0) {
+				throw new IllegalArgumentException("sleep can't be negative but was " + maxSleep);
+			}
+			this.maxDrivers = maxDrivers;
+			this.maxPassengers = maxPassengers;
+			this.regionLimit = regionLimit;
+			this.maxSleep = maxSleep;
+		}
+	}
+
+	/**
+	 * The measurements taken from a single completed scenario, or the error that stopped it
+	 */
+	public static class ScenarioResult {
+
+		public Scenario scenario;
+		public int completed;
+		public int failed;
+		public long totalTime;
+		public double throughput;
+		public long p50;
+		public long p90;
+		public long p99;
+		public long max;
+		public String error;
+
+		public ScenarioResult(Scenario scenario, int completed, int failed, long totalTime, List<Long> latencies)
+		{
+			this.scenario = scenario;
+			this.completed = completed;
+			this.failed = failed;
+			this.totalTime = totalTime;
+			this.throughput = totalTime > 0 ? completed * 1000.0 / totalTime : 0;
+
+			Collections.sort(latencies);
+			this.p50 = percentile(latencies, 50);
+			this.p90 = percentile(latencies, 90);
+			this.p99 = percentile(latencies, 99);
+			this.max = latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1);
+		}
+
+		/**
+		 * Creates the result for a scenario that failed, so it still gets a row of its own
+		 */
+		public ScenarioResult(Scenario scenario, Throwable error)
+		{
+			this.scenario = scenario;
+			this.error = error.toString();
+		}
+	}
+
+	private List<Scenario> scenarios;
+	private int parallelism;
+
+	/**
+	 * Creates a new sweep runner
+	 *
+	 * @param scenarios The scenarios to run
+	 * @param parallelism The maximum number of scenarios to run at the same time
+	 */
+	public SweepRunner(List<Scenario> scenarios, int parallelism)
+	{
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+		}
+		this.scenarios = scenarios;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Builds the full cartesian product of the given values
+	 *
+	 * @param drivers The driver counts to sweep
+	 * @param passengers The passenger counts to sweep
+	 * @param limits The max simultaneous bookings per region to sweep
+	 * @param maxSleep The maximum amount a thread will sleep (in milliseconds) in every scenario
+	 * @return The list of scenarios in the grid
+	 */
+	public static List<Scenario> grid(int[] drivers, int[] passengers, int[] limits, int maxSleep)
+	{
+		List<Scenario> grid = new ArrayList<Scenario>();
+		for (int d : drivers) {
+			for (int p : passengers) {
+				for (int l : limits) {
+					grid.add(new Scenario(d, p, l, maxSleep));
+				}
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * Runs every scenario on a fork-join pool and waits for all of them to finish. A scenario
+	 * that throws gets a result with its error set, rather than stopping the sweep.
+	 *
+	 * @return The results, in the same order as the scenarios
+	 */
+	public List<ScenarioResult> run()
+	{
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<ForkJoinTask<ScenarioResult>> tasks = new ArrayList<ForkJoinTask<ScenarioResult>>();
+			for (Scenario s : scenarios) {
+				tasks.add(pool.submit(() -> runScenario(s)));
+			}
+
+			List<ScenarioResult> results = new ArrayList<ScenarioResult>();
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					results.add(tasks.get(i).join());
+				} catch (RuntimeException e) {
+					Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+					//join() rethrows a copy of the scenario's exception, with the original as its cause
+					if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass()) {
+						cause = cause.getCause();
+					}
+					results.add(new ScenarioResult(scenarios.get(i), cause));
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs a single scenario against its own dispatch, the same way Simulation does, but
+	 * records how long each booking took from being booked to being completed. Bookings that
+	 * failed or ended without a driver are counted separately and have no latency recorded.
+	 *
+	 * @param scenario The scenario to run
+	 * @return The measurements from the scenario
+	 * @throws Exception
+	 */
+	private static ScenarioResult runScenario(Scenario scenario) throws Exception
+	{
+		long start = System.currentTimeMillis();
+
+		HashMap<String, Integer> regions = new HashMap<String, Integer>();
+		for (String name : REGION_NAMES) {
+			regions.put(name, scenario.regionLimit);
+		}
+
+		NuberDispatch dispatch = new NuberDispatch(regions, false);
+
+		//scenarios run at the same time, so each one names its people from its own counter
+		//rather than sharing Person.getRandomName()
+		int nameIndex = 0;
+
+		for (int i = 0; i < scenario.maxDrivers; i++) {
+			//dispatch only holds so many idle drivers, and the row would be wrong if some were dropped
+			if (!dispatch.addDriver(new Driver("D-" + Person.SAMPLE_NAMES[nameIndex++ % Person.SAMPLE_NAMES.length], scenario.maxSleep))) {
+				throw new IllegalStateException("Dispatch only accepted " + i + " of " + scenario.maxDrivers + " drivers");
+			}
+		}
+
+		//keep the time each booking was made next to its future
+		Queue<CompletableFuture<BookingResult>> bookings = new LinkedList<CompletableFuture<BookingResult>>();
+		Queue<Long> bookedAt = new LinkedList<Long>();
+		Random random = new Random();
+
+		for (int i = 0; i < scenario.maxPassengers; i++) {
+			Passenger p = new Passenger("P-" + Person.SAMPLE_NAMES[nameIndex++ % Person.SAMPLE_NAMES.length], scenario.maxSleep);
+			String region = REGION_NAMES[random.nextInt(REGION_NAMES.length)];
+
+			long bookedTime = System.currentTimeMillis();
+			CompletableFuture<BookingResult> f = dispatch.bookPassenger(p, region);
+			if (f != null) {
+				bookings.add(f);
+				bookedAt.add(bookedTime);
+			}
+		}
+
+		dispatch.shutdown();
+
+		List<Long> latencies = new ArrayList<Long>();
+		int failed = 0;
+		while (bookings.size() > 0) {
+
+			Iterator<CompletableFuture<BookingResult>> i = bookings.iterator();
+			Iterator<Long> t = bookedAt.iterator();
+			while (i.hasNext()) {
+				CompletableFuture<BookingResult> f = i.next();
+				long bookedTime = t.next();
+
+				if (f.isDone()) {
+					//an interrupted booking completes with null, and a failed one exceptionally
+					BookingResult result = f.isCompletedExceptionally() ? null : f.getNow(null);
+					if (result != null && result.driver != null) {
+						latencies.add(System.currentTimeMillis() - bookedTime);
+					} else {
+						failed++;
+					}
+					i.remove();
+					t.remove();
+				}
+			}
+
+			Thread.sleep(POLL_INTERVAL);
+		}
+
+		long totalTime = System.currentTimeMillis() - start;
+		return new ScenarioResult(scenario, latencies.size(), failed, totalTime, latencies);
+	}
+
+	/**
+	 * Nearest-rank percentile of an already sorted list
+	 */
+	static long percentile(List<Long> sorted, int percent)
+	{
+		if (sorted.isEmpty()) return 0;
+
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+		return sorted.get(Math.max(rank, 1) - 1);
+	}
+
+	/**
+	 * Writes the results out as CSV, one row per scenario
+	 *
+	 * @param results The results to write
+	 * @param out Where to write them
+	 */
+	public static void writeCsv(List<ScenarioResult> results, PrintWriter out)
+	{
+		out.println("drivers,passengers,regionLimit,maxSleep,completed,failed,totalTimeMs,throughputPerSec,p50Ms,p90Ms,p99Ms,maxMs,error");
+		for (ScenarioResult r : results) {
+			String error = (r.error != null) ? "\"" + r.error.replace("\"", "\"\"") + "\"" : "";
+			out.println(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%.3f,%d,%d,%d,%d,%s",
+					r.scenario.maxDrivers, r.scenario.maxPassengers, r.scenario.regionLimit, r.scenario.maxSleep,
+					r.completed, r.failed, r.totalTime, r.throughput, r.p50, r.p90, r.p99, r.max, error));
+		}
+	}
+
+	/**
+	 * Writes the results out as a JSON array, one object per scenario
+	 *
+	 * @param results The results to write
+	 * @param out Where to write them
+	 */
+	public static void writeJson(List<ScenarioResult> results, PrintWriter out)
+	{
+		out.println("[");
+		for (int i = 0; i < results.size(); i++) {
+			ScenarioResult r = results.get(i);
+			String error = (r.error != null) ? "\"" + r.error.replace("\\", "\\\\").replace("\"", "\\\"") + "\"" : "null";
+			out.print(String.format(Locale.ROOT, "  {\"drivers\": %d, \"passengers\": %d, \"regionLimit\": %d, \"maxSleep\": %d, "
+					+ "\"completed\": %d, \"failed\": %d, \"totalTimeMs\": %d, \"throughputPerSec\": %.3f, "
+					+ "\"p50Ms\": %d, \"p90Ms\": %d, \"p99Ms\": %d, \"maxMs\": %d, \"error\": %s}",
+					r.scenario.maxDrivers, r.scenario.maxPassengers, r.scenario.regionLimit, r.scenario.maxSleep,
+					r.completed, r.failed, r.totalTime, r.throughput, r.p50, r.p90, r.p99, r.max, error));
+			out.println(i < results.size() - 1 ? "," : "");
+		}
+		out.println("]");
+	}
+
+	private static int[] parseList(String value)
+	{
+		String[] parts = value.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int[] drivers = {1, 5, 10};
+		int[] passengers = {10, 100};
+		int[] limits = {10, 50};
+		int maxSleep = 1000;
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		String outFile = "sweep.csv";
+
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2) {
+				throw new IllegalArgumentException("Expected key=value but got: " + arg);
+			}
+
+			switch (kv[0]) {
+				case "drivers": drivers = parseList(kv[1]); break;
+				case "passengers": passengers = parseList(kv[1]); break;
+				case "limits": limits = parseList(kv[1]); break;
+				case "sleep": maxSleep = Integer.parseInt(kv[1]); break;
+				case "parallelism": parallelism = Integer.parseInt(kv[1]); break;
+				case "out": outFile = kv[1]; break;
+				default: throw new IllegalArgumentException("Unknown argument: " + kv[0]);
+			}
+		}
+
+		List<Scenario> scenarios = grid(drivers, passengers, limits, maxSleep);
+		SweepRunner runner = new SweepRunner(scenarios, parallelism);
+		System.out.println("Running " + scenarios.size() + " scenarios with parallelism " + parallelism);
+
+		long start = System.currentTimeMillis();
+		List<ScenarioResult> results = runner.run();
+
+		try (PrintWriter out = new PrintWriter(new FileWriter(outFile))) {
+			if (outFile.endsWith(".json")) {
+				writeJson(results, out);
+			} else {
+				writeCsv(results, out);
+			}
+		}
+
+		System.out.println("Sweep complete in " + (System.currentTimeMillis() - start) + "ms, results written to " + outFile);
+	}
+}